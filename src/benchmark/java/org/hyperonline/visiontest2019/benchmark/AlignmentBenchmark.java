@@ -0,0 +1,545 @@
+package org.hyperonline.visiontest2019.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.hyperonline.visiontest2019.pipelines.Model3DPipeline;
+import org.hyperonline.visiontest2019.pipelines.Model3DResult;
+import org.hyperonline.visiontest2019.pipelines.SkewPairTargetProcessor;
+import org.hyperonline.visiontest2019.pipelines.SkewVisionResult;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import edu.wpi.cscore.CameraServerJNI;
+
+/**
+ * Compares the accuracy and latency of both alignment methods on synthetic
+ * images of the targets at known poses. {@code Model3DPipeline} is run once for
+ * each solvePnP method that accepts all eight corners of the targets:
+ * ITERATIVE, EPNP, DLS and UPNP. P3P and AP3P are left out, since they only
+ * accept exactly four points.
+ *
+ * Run with {@code ./gradlew benchmark}. Pass {@code --csv=<file>} to also
+ * write per-frame results as CSV, and {@code --focal=<pixels>} to change the
+ * focal length used to both render and solve. Pass {@code --baseline=<file>}
+ * with the CSV from an earlier run to exit with an error if any method has
+ * become less accurate or slower than it was. Latency is only comparable
+ * between runs on the same machine.
+ */
+public class AlignmentBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final long SEED = 2019;
+
+    /*
+     * Roughly a 60 degree horizontal field of view at 640x480, like the cameras
+     * we actually use. Model3DPipeline's default preference is far too short for
+     * the targets to survive filtering at any real distance.
+     */
+    private static final double DEFAULT_FOCAL_LENGTH = 550;
+
+    private static final double[] DISTANCES = { 24, 48, 72, 96, 120 };
+    private static final double[] YAWS = { -40, -20, 0, 20, 40 };
+    private static final double[] LATERALS = { -12, 0, 12 };
+    private static final int TRIALS = 5;
+    private static final int WARMUP_FRAMES = 20;
+
+    /*
+     * Small random perturbations applied to each pose, so trials differ by more
+     * than just noise
+     */
+    private static final double JITTER_INCHES = 1;
+    private static final double JITTER_DEGREES = 2;
+
+    /*
+     * How much worse than the baseline a method may get before it counts as a
+     * regression. Mean errors may grow by a fraction of the baseline or by a
+     * fixed amount, whichever is larger, so tiny errors don't trip on noise.
+     */
+    private static final double DETECTION_TOLERANCE = 0.02;
+    private static final double ERROR_TOLERANCE = 0.1;
+    private static final double POSITION_TOLERANCE_INCHES = 0.1;
+    private static final double ANGLE_TOLERANCE_DEGREES = 0.5;
+    private static final double CENTER_TOLERANCE_PIXELS = 0.5;
+    private static final double LATENCY_TOLERANCE = 0.2;
+
+    /*
+     * Thresholds used to find the targets for the skew method. These are the
+     * same as Model3DPipeline's defaults, so both methods start from the same
+     * filtered image. The renderer draws the targets in pure green (hue 60),
+     * at least 85% saturated and at least 140 bright, inside these bounds.
+     */
+    private static final Scalar LOWER_BOUND = new Scalar(30, 200, 100);
+    private static final Scalar UPPER_BOUND = new Scalar(80, 255, 255);
+    private static final double MIN_AREA = 20;
+
+    /**
+     * Running totals for one method, at one distance or overall.
+     */
+    private static class Stats {
+        int frames = 0;
+        int found = 0;
+        int errors = 0;
+        double positionError = 0;
+        double angleError = 0;
+        double centerError = 0;
+        final List<Double> latencies = new ArrayList<>();
+        final List<double[]> skewVsAngle = new ArrayList<>();
+
+        double detectionRate() {
+            return frames == 0 ? Double.NaN : (double) found / frames;
+        }
+
+        double mean(double total) {
+            return found == 0 ? Double.NaN : total / found;
+        }
+
+        double percentile(double p) {
+            if (latencies.isEmpty()) {
+                return Double.NaN;
+            }
+            List<Double> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(p * sorted.size())));
+        }
+
+        double skewCorrelation() {
+            int n = skewVsAngle.size();
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+            for (double[] pair : skewVsAngle) {
+                sx += pair[0];
+                sy += pair[1];
+                sxx += pair[0] * pair[0];
+                syy += pair[1] * pair[1];
+                sxy += pair[0] * pair[1];
+            }
+            double cov = sxy - sx * sy / n;
+            double vx = sxx - sx * sx / n;
+            double vy = syy - sy * sy / n;
+            return cov / Math.sqrt(vx * vy);
+        }
+    }
+
+    /**
+     * One method being benchmarked. Subclasses know how to run the method on an
+     * image and score its result against ground truth.
+     */
+    private static abstract class Candidate {
+        final String m_name;
+        final Map<Double, Stats> m_byDistance = new TreeMap<>();
+        final Stats m_overall = new Stats();
+
+        Candidate(String name) {
+            m_name = name;
+        }
+
+        /**
+         * Run the method on an image. This is the part that gets timed.
+         */
+        abstract void process(Mat image);
+
+        /**
+         * Score the last result against ground truth.
+         *
+         * @return The fields to add to the CSV after the common ones, or null if
+         *         no target was found.
+         */
+        abstract String score(TargetPose pose, Point truthCenter, Stats... stats);
+    }
+
+    private static class Model3DCandidate extends Candidate {
+        private final Model3DPipeline m_model;
+
+        Model3DCandidate(String method, int solveMethod, double focalLength) {
+            this("Model3D " + method, new Model3DPipeline("Benchmark Model3D " + method, solveMethod, focalLength));
+        }
+
+        private Model3DCandidate(String name, Model3DPipeline pipeline) {
+            super(name);
+            m_model = pipeline;
+        }
+
+        @Override
+        void process(Mat image) {
+            m_model.process(image);
+        }
+
+        @Override
+        String score(TargetPose pose, Point truthCenter, Stats... stats) {
+            Model3DResult truth = pose.getTruth();
+            Model3DResult best = null;
+            double bestError = Double.POSITIVE_INFINITY;
+            for (Model3DResult result : m_model.getLastResult()) {
+                double error = Math.sqrt(square(result.getX() - truth.getX()) + square(result.getY() - truth.getY())
+                        + square(result.getZ() - truth.getZ()));
+                if (error < bestError) {
+                    best = result;
+                    bestError = error;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+
+            double angleError = Math.abs(best.topDownAngle() - truth.topDownAngle());
+            for (Stats s : stats) {
+                s.positionError += bestError;
+                s.angleError += angleError;
+            }
+            return String.format("%.3f,%.3f,,", bestError, angleError);
+        }
+    }
+
+    /**
+     * The skew method. On the robot, this runs behind {@code FindTargetsPipeline},
+     * whose thresholds are preferences tuned on the field. Here the targets are
+     * found with the same filtering as {@code Model3DPipeline} instead, so the
+     * comparison doesn't depend on whatever those preferences default to.
+     */
+    private static class SkewCandidate extends Candidate {
+        private final SkewPairTargetProcessor m_processor = new SkewPairTargetProcessor(WIDTH / 2, HEIGHT / 2);
+        private final Mat m_kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 5));
+        private final Mat m_hsv = new Mat();
+        private final Mat m_filtered = new Mat();
+        private final Mat m_hierarchy = new Mat();
+        private SkewVisionResult m_lastResult;
+
+        SkewCandidate() {
+            super("SkewPair");
+        }
+
+        @Override
+        void process(Mat image) {
+            Imgproc.cvtColor(image, m_hsv, Imgproc.COLOR_BGR2HSV);
+            Core.inRange(m_hsv, LOWER_BOUND, UPPER_BOUND, m_filtered);
+            Imgproc.erode(m_filtered, m_filtered, m_kernel);
+            Imgproc.dilate(m_filtered, m_filtered, m_kernel);
+
+            List<MatOfPoint> contours = new ArrayList<>();
+            Imgproc.findContours(m_filtered, contours, m_hierarchy, Imgproc.RETR_EXTERNAL,
+                    Imgproc.CHAIN_APPROX_SIMPLE);
+            List<Rect> targets = new ArrayList<>();
+            for (MatOfPoint contour : contours) {
+                Rect rect = Imgproc.boundingRect(contour);
+                if (rect.area() >= MIN_AREA) {
+                    targets.add(rect);
+                }
+                contour.release();
+            }
+            m_lastResult = m_processor.computeResult(targets);
+        }
+
+        @Override
+        String score(TargetPose pose, Point truthCenter, Stats... stats) {
+            SkewVisionResult result = m_lastResult;
+            if (!result.foundTarget()) {
+                return null;
+            }
+
+            double centerError = Math.hypot(result.xAbsolute() - truthCenter.x, result.yAbsolute() - truthCenter.y);
+            double truthAngle = pose.getTruth().topDownAngle();
+            for (Stats s : stats) {
+                s.centerError += centerError;
+                s.skewVsAngle.add(new double[] { result.skew(), truthAngle });
+            }
+            return String.format(",,%.3f,%.3f", centerError, result.skew());
+        }
+    }
+
+    private static double square(double x) {
+        return x * x;
+    }
+
+    private static Point center(Point[] pts) {
+        double x = 0, y = 0;
+        for (Point p : pts) {
+            x += p.x;
+            y += p.y;
+        }
+        return new Point(x / pts.length, y / pts.length);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String csvFile = null;
+        String baselineFile = null;
+        double focalLength = DEFAULT_FOCAL_LENGTH;
+        for (String arg : args) {
+            if (arg.startsWith("--csv=")) {
+                csvFile = arg.substring("--csv=".length());
+            } else if (arg.startsWith("--focal=")) {
+                focalLength = Double.parseDouble(arg.substring("--focal=".length()));
+            } else if (arg.startsWith("--baseline=")) {
+                baselineFile = arg.substring("--baseline=".length());
+            } else {
+                System.out.println(
+                        "Usage: AlignmentBenchmark [--csv=<file>] [--focal=<pixels>] [--baseline=<file>]");
+                System.exit(1);
+            }
+        }
+
+        // Read the baseline first, in case it's the same file as the output
+        Map<String, Stats> baseline = baselineFile != null ? readBaseline(baselineFile) : null;
+
+        CameraServerJNI.forceLoad();
+        PrintStream csv = csvFile != null ? new PrintStream(csvFile) : null;
+        if (csv != null) {
+            csv.println("method,grid_distance,grid_yaw,grid_lateral,distance,yaw,lateral,found,latency_ms,"
+                    + "position_error,angle_error,center_error,skew");
+        }
+
+        List<Candidate> candidates = new ArrayList<>();
+        candidates.add(new SkewCandidate());
+        candidates.add(new Model3DCandidate("ITERATIVE", Calib3d.SOLVEPNP_ITERATIVE, focalLength));
+        candidates.add(new Model3DCandidate("EPNP", Calib3d.SOLVEPNP_EPNP, focalLength));
+        candidates.add(new Model3DCandidate("DLS", Calib3d.SOLVEPNP_DLS, focalLength));
+        candidates.add(new Model3DCandidate("UPNP", Calib3d.SOLVEPNP_UPNP, focalLength));
+
+        System.out.println("Using a focal length of " + focalLength + " px");
+        SyntheticTargetRenderer renderer = new SyntheticTargetRenderer(WIDTH, HEIGHT, focalLength, SEED);
+        Random jitter = new Random(SEED);
+        Mat image = new Mat();
+
+        // Let the JIT settle before timing anything
+        renderer.render(image, new TargetPose(DISTANCES[0], 0, 0, 0));
+        for (Candidate c : candidates) {
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                c.process(image);
+            }
+        }
+
+        int skipped = 0;
+        for (double distance : DISTANCES) {
+            for (double yaw : YAWS) {
+                for (double lateral : LATERALS) {
+                    for (int trial = 0; trial < TRIALS; trial++) {
+                        TargetPose pose = new TargetPose(
+                                distance + JITTER_INCHES * jitter.nextGaussian(),
+                                yaw + JITTER_DEGREES * jitter.nextGaussian(),
+                                lateral + JITTER_INCHES * jitter.nextGaussian(),
+                                JITTER_INCHES * jitter.nextGaussian());
+                        if (!renderer.isVisible(pose)) {
+                            skipped++;
+                            continue;
+                        }
+                        renderer.render(image, pose);
+                        Point truthCenter = center(renderer.project(pose));
+                        String poseFields = String.format("%.0f,%.0f,%.0f,%.3f,%.3f,%.3f", distance, yaw,
+                                lateral, pose.getDistance(), pose.getYaw(), pose.getLateral());
+
+                        for (Candidate c : candidates) {
+                            runFrame(c, image, distance, pose, poseFields, truthCenter, csv);
+                        }
+                    }
+                }
+            }
+        }
+
+        image.release();
+        if (csv != null) {
+            csv.close();
+        }
+
+        System.out.println("Skipped " + skipped + " poses with the target out of view");
+        printReport(candidates);
+
+        boolean regressed = baseline != null && compareToBaseline(candidates, baseline);
+        // Exit explicitly, since the camera server leaves threads running
+        System.exit(regressed ? 1 : 0);
+    }
+
+    private static void runFrame(Candidate c, Mat image, double distance, TargetPose pose, String poseFields,
+            Point truthCenter, PrintStream csv) {
+        Stats atDistance = c.m_byDistance.computeIfAbsent(distance, d -> new Stats());
+        atDistance.frames++;
+        c.m_overall.frames++;
+
+        long start = System.nanoTime();
+        try {
+            c.process(image);
+        } catch (RuntimeException e) {
+            atDistance.errors++;
+            c.m_overall.errors++;
+            if (c.m_overall.errors == 1) {
+                System.out.println(c.m_name + " threw an exception:");
+                e.printStackTrace(System.out);
+            }
+            if (csv != null) {
+                csv.printf("%s,%s,0,,,,,%n", c.m_name, poseFields);
+            }
+            return;
+        }
+        double latency = (System.nanoTime() - start) / 1e6;
+        atDistance.latencies.add(latency);
+        c.m_overall.latencies.add(latency);
+
+        String fields = c.score(pose, truthCenter, atDistance, c.m_overall);
+        if (fields != null) {
+            atDistance.found++;
+            c.m_overall.found++;
+        }
+        if (csv != null) {
+            csv.printf("%s,%s,%d,%.3f,%s%n", c.m_name, poseFields, fields != null ? 1 : 0, latency,
+                    fields != null ? fields : ",,,");
+        }
+    }
+
+    private static void printReport(List<Candidate> candidates) {
+        String header = String.format("%-16s %8s %7s %7s %9s %9s %9s %9s %8s %8s", "Method", "Distance", "Found",
+                "Errors", "Pos (in)", "Ang (deg)", "Ctr (px)", "SkewCorr", "p50 ms", "p95 ms");
+        System.out.println(header);
+        for (Candidate c : candidates) {
+            for (Map.Entry<Double, Stats> entry : c.m_byDistance.entrySet()) {
+                printRow(c, String.format("%.0f", entry.getKey()), entry.getValue());
+            }
+            printRow(c, "all", c.m_overall);
+        }
+    }
+
+    private static void printRow(Candidate c, String distance, Stats s) {
+        boolean is3D = c instanceof Model3DCandidate;
+        System.out.println(String.format("%-16s %8s %6.1f%% %7d %9s %9s %9s %9s %8.2f %8.2f", c.m_name, distance,
+                100.0 * s.found / Math.max(1, s.frames), s.errors,
+                is3D ? mean(s.positionError, s.found) : "-",
+                is3D ? mean(s.angleError, s.found) : "-",
+                is3D ? "-" : mean(s.centerError, s.found),
+                is3D ? "-" : String.format("%.3f", s.skewCorrelation()),
+                s.percentile(0.5), s.percentile(0.95)));
+    }
+
+    private static String mean(double total, int count) {
+        return count == 0 ? "-" : String.format("%.2f", total / count);
+    }
+
+    /**
+     * Total up the per-frame results of an earlier run, as written with
+     * {@code --csv}, for each method.
+     */
+    private static Map<String, Stats> readBaseline(String file) throws IOException {
+        Map<String, Stats> baseline = new TreeMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException(file + " is empty");
+            }
+            List<String> header = Arrays.asList(line.split(","));
+            int method = column(header, "method", file);
+            int found = column(header, "found", file);
+            int latency = column(header, "latency_ms", file);
+            int position = column(header, "position_error", file);
+            int angle = column(header, "angle_error", file);
+            int center = column(header, "center_error", file);
+
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(",", -1);
+                Stats s = baseline.computeIfAbsent(fields[method], m -> new Stats());
+                s.frames++;
+                if (fields[latency].isEmpty()) {
+                    s.errors++;
+                    continue;
+                }
+                s.latencies.add(Double.parseDouble(fields[latency]));
+                if (!fields[found].equals("1")) {
+                    continue;
+                }
+                s.found++;
+                if (!fields[position].isEmpty()) {
+                    s.positionError += Double.parseDouble(fields[position]);
+                    s.angleError += Double.parseDouble(fields[angle]);
+                }
+                if (!fields[center].isEmpty()) {
+                    s.centerError += Double.parseDouble(fields[center]);
+                }
+            }
+        }
+        return baseline;
+    }
+
+    private static int column(List<String> header, String name, String file) throws IOException {
+        int index = header.indexOf(name);
+        if (index < 0) {
+            throw new IOException(file + " has no " + name + " column");
+        }
+        return index;
+    }
+
+    /**
+     * Compare the overall results of each method against the baseline, and
+     * print any regressions.
+     *
+     * @return True if any method regressed.
+     */
+    private static boolean compareToBaseline(List<Candidate> candidates, Map<String, Stats> baseline) {
+        boolean regressed = false;
+        for (Candidate c : candidates) {
+            Stats before = baseline.get(c.m_name);
+            if (before == null) {
+                System.out.println(c.m_name + " is not in the baseline, so was not compared");
+                continue;
+            }
+            Stats now = c.m_overall;
+            if (before.frames != now.frames) {
+                System.out.println(c.m_name + " ran " + now.frames + " frames but the baseline ran "
+                        + before.frames + ", so the results may not be comparable");
+            }
+
+            regressed |= regression(c.m_name, "miss rate", 1 - before.detectionRate(), 1 - now.detectionRate(),
+                    DETECTION_TOLERANCE);
+            if (c instanceof Model3DCandidate) {
+                regressed |= errorRegression(c.m_name, "position error (in)", before.mean(before.positionError),
+                        now.mean(now.positionError), POSITION_TOLERANCE_INCHES);
+                regressed |= errorRegression(c.m_name, "angle error (deg)", before.mean(before.angleError),
+                        now.mean(now.angleError), ANGLE_TOLERANCE_DEGREES);
+            } else {
+                regressed |= errorRegression(c.m_name, "center error (px)", before.mean(before.centerError),
+                        now.mean(now.centerError), CENTER_TOLERANCE_PIXELS);
+            }
+            double p95 = before.percentile(0.95);
+            regressed |= regression(c.m_name, "p95 latency (ms)", p95, now.percentile(0.95),
+                    LATENCY_TOLERANCE * p95);
+        }
+        System.out.println(regressed ? "Regressed against the baseline" : "No regressions against the baseline");
+        return regressed;
+    }
+
+    private static boolean errorRegression(String name, String what, double before, double after,
+            double allowed) {
+        return regression(name, what, before, after, Math.max(allowed, ERROR_TOLERANCE * before));
+    }
+
+    /**
+     * Check whether a measurement where lower is better got worse by more than
+     * the given amount. Measurements missing from either run are not compared.
+     */
+    private static boolean regression(String name, String what, double before, double after, double allowed) {
+        if (Double.isNaN(before) || Double.isNaN(after)) {
+            return false;
+        }
+        double limit = before + allowed;
+        if (after <= limit) {
+            return false;
+        }
+        System.out.println(String.format("REGRESSION: %s %s went from %.3f to %.3f (limit %.3f)", name, what,
+                before, after, limit));
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+package org.hyperonline.visiontest2019.benchmark;
+
+import java.util.Random;
+
+import org.hyperonline.visiontest2019.pipelines.Model3DPipeline;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Draws the pair of targets as seen by an ideal pinhole camera at a known pose,
+ * with randomized lighting and sensor noise.
+ */
+public class SyntheticTargetRenderer {
+
+    /*
+     * Corners of each target, in the order they go around the quadrilateral, as
+     * indices into Model3DPipeline.objectPoints()
+     */
+    private static final int[] LEFT_TARGET = { 0, 2, 6, 4 };
+    private static final int[] RIGHT_TARGET = { 1, 3, 7, 5 };
+
+    /*
+     * Bits of sub-pixel precision used when filling the targets
+     */
+    private static final int SHIFT = 4;
+
+    private final int m_width, m_height;
+    private final Mat m_cameraMatrix = new Mat(new Size(3, 3), CvType.CV_64F);
+    private final MatOfDouble m_distortion = new MatOfDouble();
+    private final MatOfPoint3f m_objectPoints = new MatOfPoint3f(Model3DPipeline.objectPoints());
+    private final Random m_random;
+
+    /*
+     * Intermediate steps used in rendering, kept to avoid reallocating them
+     */
+    private final Mat m_noise = new Mat();
+    private final Mat m_wide = new Mat();
+
+    /**
+     * Create a renderer using the same camera model as {@code Model3DPipeline}.
+     *
+     * @param width
+     *                        Width of rendered images, in pixels.
+     * @param height
+     *                        Height of rendered images, in pixels.
+     * @param focalLength
+     *                        Focal length of the camera, in pixels.
+     * @param seed
+     *                        Seed for the lighting and noise, so runs are
+     *                        repeatable. The noise comes from OpenCV's own
+     *                        generator, which is reseeded from this one before
+     *                        each image.
+     */
+    public SyntheticTargetRenderer(int width, int height, double focalLength, long seed) {
+        m_width = width;
+        m_height = height;
+        double[] data = { focalLength, 0, width / 2.0, 0, focalLength, height / 2.0, 0, 0, 1 };
+        m_cameraMatrix.put(0, 0, data);
+        m_random = new Random(seed);
+    }
+
+    /**
+     * Project the corners of the targets into the image.
+     *
+     * @param pose
+     *                 The pose of the targets.
+     * @return The image coordinates of each corner, in the same order as
+     *         {@link Model3DPipeline#objectPoints()}.
+     */
+    public Point[] project(TargetPose pose) {
+        Mat rvec = new Mat();
+        Mat tvec = new Mat();
+        MatOfPoint2f imagePoints = new MatOfPoint2f();
+        pose.getTruth().rotation(rvec);
+        pose.getTruth().translation(tvec);
+
+        Calib3d.projectPoints(m_objectPoints, rvec, tvec, m_cameraMatrix, m_distortion, imagePoints);
+        Point[] pts = imagePoints.toArray();
+
+        rvec.release();
+        tvec.release();
+        imagePoints.release();
+        return pts;
+    }
+
+    /**
+     * Check whether the whole target is in view at the given pose.
+     *
+     * @param pose
+     *                 The pose of the targets.
+     * @return True if every corner lands inside the image.
+     */
+    public boolean isVisible(TargetPose pose) {
+        if (pose.getDistance() <= 0) {
+            return false;
+        }
+        for (Point p : project(pose)) {
+            if (p.x < 0 || p.y < 0 || p.x >= m_width || p.y >= m_height) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Render the targets at the given pose. The brightness and saturation of the
+     * targets, the brightness of the background, and the amount of noise are
+     * all chosen at random.
+     *
+     * @param dst
+     *                 Will hold the rendered BGR image.
+     * @param pose
+     *                 The pose of the targets.
+     */
+    public void render(Mat dst, TargetPose pose) {
+        double background = 10 + 50 * m_random.nextDouble();
+        double value = 140 + 115 * m_random.nextDouble();
+        double washout = 0.15 * m_random.nextDouble();
+        double noise = 2 + 8 * m_random.nextDouble();
+
+        dst.create(m_height, m_width, CvType.CV_8UC3);
+        dst.setTo(new Scalar(background, background, background));
+
+        Point[] pts = project(pose);
+        Scalar color = new Scalar(value * washout, value, value * washout);
+        fillTarget(dst, pts, LEFT_TARGET, color);
+        fillTarget(dst, pts, RIGHT_TARGET, color);
+
+        dst.convertTo(m_wide, CvType.CV_16SC3);
+        m_noise.create(m_height, m_width, CvType.CV_16SC3);
+        // randn draws from OpenCV's global generator, so reseed it from ours to
+        // keep the noise repeatable
+        Core.setRNGSeed(m_random.nextInt());
+        Core.randn(m_noise, 0, noise);
+        Core.add(m_wide, m_noise, m_wide);
+        m_wide.convertTo(dst, CvType.CV_8UC3);
+    }
+
+    private static void fillTarget(Mat dst, Point[] pts, int[] indices, Scalar color) {
+        Point[] corners = new Point[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            Point p = pts[indices[i]];
+            corners[i] = new Point(Math.round(p.x * (1 << SHIFT)), Math.round(p.y * (1 << SHIFT)));
+        }
+        MatOfPoint poly = new MatOfPoint(corners);
+        Imgproc.fillConvexPoly(dst, poly, color, Imgproc.LINE_AA, SHIFT);
+        poly.release();
+    }
+}
@@ -0,0 +1,60 @@
+package org.hyperonline.visiontest2019.benchmark;
+
+import org.hyperonline.visiontest2019.pipelines.Model3DResult;
+
+/**
+ * A known position and orientation of the pair of targets relative to the
+ * camera, used as ground truth when rendering synthetic images.
+ */
+public class TargetPose {
+
+    private final double m_distance;
+    private final double m_yaw;
+    private final double m_lateral;
+    private final Model3DResult m_truth;
+
+    /**
+     * Create a pose. The target is rotated about the vertical axis by the given
+     * yaw, then moved in front of the camera.
+     *
+     * @param distance
+     *                     Distance in front of the camera, in inches.
+     * @param yaw
+     *                     Rotation of the target about the vertical axis, in
+     *                     degrees.
+     * @param lateral
+     *                     Offset to the right of the camera, in inches.
+     * @param height
+     *                     Offset below the camera, in inches.
+     */
+    public TargetPose(double distance, double yaw, double lateral, double height) {
+        m_distance = distance;
+        m_yaw = yaw;
+        m_lateral = lateral;
+        float[] tvec = { (float) lateral, (float) height, (float) distance };
+        float[] rvec = { 0, (float) Math.toRadians(yaw), 0 };
+        m_truth = new Model3DResult(tvec, rvec);
+    }
+
+    public double getDistance() {
+        return m_distance;
+    }
+
+    public double getYaw() {
+        return m_yaw;
+    }
+
+    public double getLateral() {
+        return m_lateral;
+    }
+
+    /**
+     * Get the result a perfect {@code Model3DPipeline} would report for this
+     * pose.
+     *
+     * @return The ground truth result.
+     */
+    public Model3DResult getTruth() {
+        return m_truth;
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.DoubleSupplier;
 import java.util.stream.Collectors;
 
 import org.hyperonline.hyperlib.pref.DoublePreference;
@@ -40,7 +41,9 @@ public class Model3DPipeline implements VisionGUIPipeline {
     private final ScalarPreference m_lowerBound;
     private final ScalarPreference m_upperBound;
     private final DoublePreference m_minArea;
-    private final DoublePreference m_focalLength;
+    private final DoubleSupplier m_focalLength;
+
+    private final int m_solveMethod;
 
     /**
      * Construct a new pipeline with the given name and target processor.
@@ -53,13 +56,56 @@ public class Model3DPipeline implements VisionGUIPipeline {
      *                      list of rectangles.
      */
     public Model3DPipeline(String name) {
+        this(name, Calib3d.SOLVEPNP_ITERATIVE);
+    }
+
+    /**
+     * Construct a new pipeline with the given name, using a specific method to
+     * solve for the target's pose.
+     * 
+     * @param name
+     *                        The name used to define the preferences set
+     *                        associated to this pipeline.
+     * @param solveMethod
+     *                        The method passed to solvePnP, such as
+     *                        {@link Calib3d#SOLVEPNP_ITERATIVE} or
+     *                        {@link Calib3d#SOLVEPNP_EPNP}.
+     */
+    public Model3DPipeline(String name, int solveMethod) {
+        this(name, solveMethod, null);
+    }
+
+    /**
+     * Construct a new pipeline with the given name and solve method, using a
+     * fixed focal length instead of the "FocalLength" preference. This is useful
+     * when the camera is known exactly, such as with synthetic images.
+     * 
+     * @param name
+     *                        The name used to define the preferences set
+     *                        associated to this pipeline.
+     * @param solveMethod
+     *                        The method passed to solvePnP.
+     * @param focalLength
+     *                        The focal length of the camera, in pixels.
+     */
+    public Model3DPipeline(String name, int solveMethod, double focalLength) {
+        this(name, solveMethod, (DoubleSupplier) () -> focalLength);
+    }
+
+    private Model3DPipeline(String name, int solveMethod, DoubleSupplier focalLength) {
         m_name = Objects.requireNonNull(name);
+        m_solveMethod = solveMethod;
 
         m_prefs = new PreferencesSet(name);
         m_lowerBound = m_prefs.addScalar("LowerBound", "HSV", 30, 200, 100);
         m_upperBound = m_prefs.addScalar("UpperBound", "HSV", 80, 255, 255);
         m_minArea = m_prefs.addDouble("MinArea", 20);
-        m_focalLength = m_prefs.addDouble("FocalLength", 100);
+        if (focalLength == null) {
+            DoublePreference pref = m_prefs.addDouble("FocalLength", 100);
+            m_focalLength = pref::get;
+        } else {
+            m_focalLength = focalLength;
+        }
     }
 
     /*
@@ -200,13 +246,29 @@ public class Model3DPipeline implements VisionGUIPipeline {
             new Point3(-4 - 5 * S14_5, 0, 0),
             new Point3(4 + 5 * S14_5, 0, 0));
 
+    /**
+     * Get the corners of the pair of targets, in inches, in the coordinate system
+     * used for results. The corners of the left target are at even indices, and
+     * the corners of the right target are at odd indices.
+     * 
+     * @return The corners of the targets.
+     */
+    public static Point3[] objectPoints() {
+        return OBJECT_POINTS.toArray();
+    }
+
     private Model3DResult imagePointsToResult(Point[] pts) {
         updateCameraMatrix();
         Mat rvec = new Mat();
         Mat tvec = new Mat();
         MatOfPoint2f imagePoints = new MatOfPoint2f(pts);
 
-        Calib3d.solvePnP(OBJECT_POINTS, imagePoints, m_cameraMatrix, m_distortion, rvec, tvec);
+        Calib3d.solvePnP(OBJECT_POINTS, imagePoints, m_cameraMatrix, m_distortion, rvec, tvec, false,
+                m_solveMethod);
+        // With a double camera matrix, solvePnP gives back doubles, but results
+        // hold floats
+        rvec.convertTo(rvec, CvType.CV_32F);
+        tvec.convertTo(tvec, CvType.CV_32F);
         Model3DResult res = new Model3DResult(tvec, rvec);
 
         rvec.release();
@@ -216,12 +278,14 @@ public class Model3DPipeline implements VisionGUIPipeline {
         return res;
     }
 
-    private final Mat m_cameraMatrix = new Mat(new Size(3, 3), CvType.CV_32F);
+    // This must hold doubles: given floats, every solvePnP method except
+    // ITERATIVE gives back zeros or garbage
+    private final Mat m_cameraMatrix = new Mat(new Size(3, 3), CvType.CV_64F);
     private final MatOfDouble m_distortion = new MatOfDouble();
 
     private void updateCameraMatrix() {
-        float f = (float) m_focalLength.get();
-        float[] data = { f, 0, m_hsv.width() / 2.0f, 0, f, m_hsv.height() / 2.0f, 0, 0, 1 };
+        double f = m_focalLength.getAsDouble();
+        double[] data = { f, 0, m_hsv.width() / 2.0, 0, f, m_hsv.height() / 2.0, 0, 0, 1 };
         m_cameraMatrix.put(0, 0, data);
     }
 
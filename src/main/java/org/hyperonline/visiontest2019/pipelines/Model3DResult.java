@@ -43,6 +43,48 @@ public class Model3DResult {
         rvec.get(0, 0, m_rvec);
     }
 
+    /**
+     * Create a result from raw translation and rotation vectors, as returned by
+     * {@link #translationVector()} and {@link #rotationVector()}. This is mostly
+     * useful for restoring results which were saved earlier.
+     * 
+     * @param tvec
+     *                 The translation vector, of length 3.
+     * @param rvec
+     *                 The rotation vector, of length 3.
+     */
+    public Model3DResult(float[] tvec, float[] rvec) {
+        Objects.requireNonNull(tvec, "tvec == null");
+        Objects.requireNonNull(rvec, "rvec == null");
+        if (tvec.length != 3) {
+            throw new IllegalArgumentException("tvec does not have length 3");
+        }
+        if (rvec.length != 3) {
+            throw new IllegalArgumentException("rvec does not have length 3");
+        }
+
+        m_tvec = tvec.clone();
+        m_rvec = rvec.clone();
+    }
+
+    /**
+     * Get a copy of the raw translation vector.
+     * 
+     * @return The translation vector, of length 3.
+     */
+    public float[] translationVector() {
+        return m_tvec.clone();
+    }
+
+    /**
+     * Get a copy of the raw rotation vector.
+     * 
+     * @return The rotation vector, of length 3.
+     */
+    public float[] rotationVector() {
+        return m_rvec.clone();
+    }
+
     /**
      * Copy the translation vector to a given Mat.
      * 
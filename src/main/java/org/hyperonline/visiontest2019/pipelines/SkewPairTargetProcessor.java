@@ -53,7 +53,7 @@ public class SkewPairTargetProcessor extends AbstractTargetProcessor<SkewVisionR
             r1 = r2;
             r2 = t;
         }
-        final double skew = r1.height / r2.height - r2.height / r1.height;
+        final double skew = (double) r1.height / r2.height - (double) r2.height / r1.height;
         final Point center = averagePoints(centerOfTarget(r1), centerOfTarget(r2));
         return new SkewVisionResult(center.x - m_xCrosshairs.getAsInt(),
                                     center.y - m_yCrosshairs.getAsInt(),
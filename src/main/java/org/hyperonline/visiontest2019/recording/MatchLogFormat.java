@@ -0,0 +1,172 @@
+package org.hyperonline.visiontest2019.recording;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Constants describing the on-disk layout of a match log. Each run of the
+ * recorder gets a numbered prefix, and its log is a ring of segment files
+ * sharing that prefix:
+ *
+ * <pre>
+ * vision-0001-0000.vlog, vision-0001-0001.vlog, ...
+ * </pre>
+ *
+ * Each segment is preallocated to a fixed size and starts with a header (magic
+ * number, version, sequence number, wall-clock start time in milliseconds).
+ * Once the ring is full, the oldest segment is reused, so the sequence number
+ * rather than the file name gives the order of segments. Segments left over
+ * from older runs may also be renamed into a new run to save allocating them;
+ * their magic number is cleared first so they aren't mistaken for part of the
+ * new log.
+ *
+ * After the header comes a sequence of records, each prefixed by its length in
+ * bytes. A length of zero marks the end of the segment. Records are written
+ * through a memory mapping, and the OS writes dirty pages back in whatever
+ * order it likes, so after a power loss any part of the last few records may
+ * be missing. Each record therefore ends with a CRC32 of its contents, and the
+ * reader treats a record which fails the check as the end of the log.
+ *
+ * A record holds, in order:
+ * <ul>
+ * <li>the processing time and frame number. The processing time is taken from
+ * {@link System#nanoTime()} when the recorder saw the frame, after any earlier
+ * pipelines have run, so it includes their jitter. It is not the time the frame
+ * was grabbed from the camera.</li>
+ * <li>the rows, columns, OpenCV type, and raw pixel bytes of the frame</li>
+ * <li>a flag, followed by the list of {@code Model3DResult} tvec/rvec pairs if
+ * set</li>
+ * <li>a flag, followed by the fields of a {@code SkewVisionResult} if set</li>
+ * <li>the CRC32 of everything above</li>
+ * </ul>
+ */
+final class MatchLogFormat {
+
+    static final int MAGIC = 0x564c4f47; // "VLOG"
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    static final int END_OF_SEGMENT = 0;
+    static final int CHECKSUM_SIZE = 4;
+
+    static final String RUN_PREFIX = "vision-";
+    static final String SEGMENT_SUFFIX = ".vlog";
+
+    private static final Pattern SEGMENT_NAME = Pattern
+            .compile(Pattern.quote(RUN_PREFIX) + "(\\d+)-(\\d+)" + Pattern.quote(SEGMENT_SUFFIX));
+
+    private MatchLogFormat() {
+    }
+
+    static File segmentFile(String prefix, int index) {
+        return new File(String.format("%s-%04d%s", prefix, index, SEGMENT_SUFFIX));
+    }
+
+    static String runPrefix(File directory, int run) {
+        return new File(directory, String.format("%s%04d", RUN_PREFIX, run)).getPath();
+    }
+
+    /**
+     * Get the run number a segment file belongs to.
+     *
+     * @return The run number, or -1 if the file isn't a segment.
+     */
+    static int runNumber(File file) {
+        Matcher m = SEGMENT_NAME.matcher(file.getName());
+        return m.matches() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    /**
+     * Get the index of a segment file within its run.
+     *
+     * @return The index, or -1 if the file isn't a segment.
+     */
+    static int segmentIndex(File file) {
+        Matcher m = SEGMENT_NAME.matcher(file.getName());
+        return m.matches() ? Integer.parseInt(m.group(2)) : -1;
+    }
+
+    /**
+     * List every segment file in a directory, from any run.
+     */
+    static List<File> listSegments(File directory) {
+        List<File> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && runNumber(file) >= 0) {
+                    segments.add(file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    static int checksum(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Size of a record, including its checksum but not its length prefix.
+     */
+    static int recordSize(int frameBytes, int model3DCount, boolean hasSkew) {
+        int size = 8 + 8 + 4 + 4 + 4 + 4 + frameBytes;
+        size += 1;
+        if (model3DCount >= 0) {
+            size += 4 + model3DCount * 6 * 4;
+        }
+        size += 1;
+        if (hasSkew) {
+            size += 5 * 8 + 1;
+        }
+        return size + CHECKSUM_SIZE;
+    }
+
+    /*
+     * A mapping is normally only released when its buffer is garbage collected,
+     * which can exhaust the address space of a 32-bit JVM long before the heap
+     * fills up. There's no public API to release it early, so go through Unsafe
+     * if it's there.
+     */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Cannot unmap log segments early, leaving it to the garbage collector");
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Release a mapping right away. The buffer must not be used afterwards.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Fall back to the garbage collector
+        }
+    }
+}
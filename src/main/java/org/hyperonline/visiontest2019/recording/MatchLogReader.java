@@ -0,0 +1,336 @@
+package org.hyperonline.visiontest2019.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.hyperonline.visiontest2019.pipelines.Model3DResult;
+import org.hyperonline.visiontest2019.pipelines.SkewVisionResult;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Reads back a log written by {@link MatchRecorder}, either frame by frame or
+ * by replaying it into a sink such as a {@code CvSource} or a pipeline.
+ *
+ * The last records of a log may be incomplete if the robot lost power while
+ * recording. Any record which fails its checksum or fails to decode is treated
+ * as the end of the log.
+ */
+public class MatchLogReader implements AutoCloseable {
+
+    /**
+     * How fast to play back a log.
+     */
+    public enum Speed {
+        /**
+         * Wait between frames as long as the recorder saw between them, up to
+         * {@link MatchLogReader#MAX_REPLAY_GAP_NANOS}.
+         */
+        RECORDED,
+        /** Play back frames as fast as they can be consumed. */
+        MAX
+    }
+
+    /**
+     * The longest wait between two frames when replaying at the recorded speed.
+     * Longer gaps, e.g. while the recorder was disarmed between matches, are
+     * skipped over.
+     */
+    public static final long MAX_REPLAY_GAP_NANOS = 1_000_000_000L;
+
+    /**
+     * A segment file and its place in the ring.
+     */
+    private static class Segment {
+        final File file;
+        final long sequence;
+
+        Segment(File file, long sequence) {
+            this.file = file;
+            this.sequence = sequence;
+        }
+    }
+
+    private final List<Segment> m_segments;
+    private int m_segmentIndex = 0;
+    private MappedByteBuffer m_segment = null;
+    private boolean m_done = false;
+    private RecordedFrame m_next;
+
+    /**
+     * Open a log for reading.
+     *
+     * @param prefix
+     *                   The prefix shared by all segments of the log, as given by
+     *                   {@link MatchRecorder#getPrefix()}.
+     * @throws IOException
+     *                         If the log has no readable segments.
+     */
+    public MatchLogReader(String prefix) throws IOException {
+        Objects.requireNonNull(prefix, "prefix == null");
+        m_segments = findSegments(prefix);
+        if (m_segments.isEmpty()) {
+            throw new IOException("No log found with prefix " + prefix);
+        }
+        m_next = readFrame();
+    }
+
+    /**
+     * Get the size of the first frame in the log, which is useful for setting up
+     * a video source to replay into.
+     *
+     * @return The frame size, or {@code null} if the log is empty.
+     */
+    public Size getFrameSize() {
+        return m_next == null ? null : m_next.getFrame().size();
+    }
+
+    /**
+     * Read the next frame from the log.
+     *
+     * @return The next frame, or {@code null} if the end of the log has been
+     *         reached.
+     * @throws IOException
+     *                         If a segment can't be read.
+     */
+    public RecordedFrame next() throws IOException {
+        RecordedFrame result = m_next;
+        if (result != null) {
+            m_next = readFrame();
+        }
+        return result;
+    }
+
+    /**
+     * Play back the rest of the log, passing each frame to the given sink. Each
+     * frame is released after the sink returns, so the sink must copy it if it
+     * needs to keep it.
+     *
+     * @param sink
+     *                  Receives each frame, e.g. {@code CvSource::putFrame} or
+     *                  {@code VisionGUIPipeline::process}.
+     * @param speed
+     *                  How fast to play back the log.
+     * @throws IOException
+     *                         If a segment can't be read.
+     * @throws InterruptedException
+     *                                  If interrupted while waiting between
+     *                                  frames.
+     */
+    public void replay(Consumer<Mat> sink, Speed speed) throws IOException, InterruptedException {
+        long firstRecorded = 0;
+        long firstReplayed = 0;
+        long lastRecorded = 0;
+        boolean started = false;
+
+        RecordedFrame frame;
+        while ((frame = next()) != null) {
+            if (speed == Speed.RECORDED) {
+                long recorded = frame.getProcessTime();
+                if (!started || recorded - lastRecorded > MAX_REPLAY_GAP_NANOS || recorded < lastRecorded) {
+                    // Start timing afresh from this frame
+                    firstRecorded = recorded;
+                    firstReplayed = System.nanoTime();
+                    started = true;
+                }
+                lastRecorded = recorded;
+                long target = firstReplayed + (recorded - firstRecorded);
+                long wait;
+                while ((wait = target - System.nanoTime()) > 0) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+            sink.accept(frame.getFrame());
+            frame.getFrame().release();
+        }
+    }
+
+    /**
+     * Release the segment currently being read.
+     */
+    @Override
+    public void close() {
+        m_done = true;
+        closeSegment();
+        if (m_next != null) {
+            m_next.getFrame().release();
+            m_next = null;
+        }
+    }
+
+    /**
+     * List the segments of a log, oldest first. Segments without a valid header,
+     * e.g. one not yet written or since reused by a later run, are skipped.
+     */
+    private static List<Segment> findSegments(String prefix) throws IOException {
+        File prefixFile = new File(prefix);
+        File directory = prefixFile.getAbsoluteFile().getParentFile();
+        Pattern name = Pattern.compile(Pattern.quote(prefixFile.getName()) + "-\\d+"
+                + Pattern.quote(MatchLogFormat.SEGMENT_SUFFIX));
+        File[] files = directory == null ? null : directory.listFiles((dir, n) -> name.matcher(n).matches());
+
+        List<Segment> segments = new ArrayList<>();
+        for (File file : files == null ? new File[0] : files) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    FileChannel channel = raf.getChannel()) {
+                ByteBuffer header = ByteBuffer.allocate(MatchLogFormat.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // Keep reading until the header is full or the file ends
+                }
+                header.flip();
+                if (header.remaining() < MatchLogFormat.HEADER_SIZE || header.getInt() != MatchLogFormat.MAGIC) {
+                    System.out.println("Skipping " + file + ", which is not a match log");
+                    continue;
+                }
+                int version = header.getInt();
+                if (version != MatchLogFormat.VERSION) {
+                    throw new IOException(file + " has unsupported version " + version);
+                }
+                segments.add(new Segment(file, header.getLong()));
+            }
+        }
+        segments.sort(Comparator.comparingLong(s -> s.sequence));
+        return segments;
+    }
+
+    private RecordedFrame readFrame() throws IOException {
+        while (!m_done) {
+            if (m_segment == null) {
+                if (m_segmentIndex >= m_segments.size()) {
+                    m_done = true;
+                    break;
+                }
+                openSegment(m_segments.get(m_segmentIndex).file);
+            }
+
+            int size = m_segment.remaining() >= 4 ? m_segment.getInt() : MatchLogFormat.END_OF_SEGMENT;
+            if (size == MatchLogFormat.END_OF_SEGMENT) {
+                closeSegment();
+                m_segmentIndex++;
+                continue;
+            }
+
+            RecordedFrame frame = null;
+            if (size > 0 && size <= m_segment.remaining()) {
+                ByteBuffer record = m_segment.slice().order(ByteOrder.LITTLE_ENDIAN);
+                record.limit(size);
+                m_segment.position(m_segment.position() + size);
+                frame = readRecord(record);
+            }
+            if (frame == null) {
+                System.out.println("Bad record in segment " + m_segments.get(m_segmentIndex).file
+                        + ", treating it as the end of the log");
+                m_done = true;
+                closeSegment();
+                break;
+            }
+            return frame;
+        }
+        return null;
+    }
+
+    private void openSegment(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            m_segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        m_segment.order(ByteOrder.LITTLE_ENDIAN);
+        m_segment.position(MatchLogFormat.HEADER_SIZE);
+    }
+
+    private void closeSegment() {
+        if (m_segment != null) {
+            MatchLogFormat.unmap(m_segment);
+            m_segment = null;
+        }
+    }
+
+    /**
+     * Decode one record, checking its checksum and that its fields are
+     * consistent with each other and with the record's length.
+     *
+     * @return The frame, or {@code null} if the record is corrupt.
+     */
+    private static RecordedFrame readRecord(ByteBuffer buf) {
+        try {
+            if (buf.remaining() < MatchLogFormat.CHECKSUM_SIZE) {
+                return null;
+            }
+            int bodyEnd = buf.limit() - MatchLogFormat.CHECKSUM_SIZE;
+            int checksum = buf.getInt(bodyEnd);
+            buf.limit(bodyEnd);
+            if (MatchLogFormat.checksum(buf.duplicate()) != checksum) {
+                return null;
+            }
+
+            long processTime = buf.getLong();
+            long frameNumber = buf.getLong();
+            int rows = buf.getInt();
+            int cols = buf.getInt();
+            int type = buf.getInt();
+            int length = buf.getInt();
+            if (rows <= 0 || cols <= 0 || CvType.depth(type) != CvType.CV_8U
+                    || (long) rows * cols * CvType.channels(type) != length || length > buf.remaining()) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            buf.get(data);
+
+            List<Model3DResult> model3D = null;
+            if (buf.get() != 0) {
+                int count = buf.getInt();
+                if (count < 0 || (long) count * 6 * 4 > buf.remaining()) {
+                    return null;
+                }
+                List<Model3DResult> results = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    float[] tvec = new float[3];
+                    float[] rvec = new float[3];
+                    for (int j = 0; j < 3; j++) {
+                        tvec[j] = buf.getFloat();
+                    }
+                    for (int j = 0; j < 3; j++) {
+                        rvec[j] = buf.getFloat();
+                    }
+                    results.add(new Model3DResult(tvec, rvec));
+                }
+                model3D = Collections.unmodifiableList(results);
+            }
+
+            SkewVisionResult skew = null;
+            if (buf.get() != 0) {
+                double xError = buf.getDouble();
+                double yError = buf.getDouble();
+                double xAbs = buf.getDouble();
+                double yAbs = buf.getDouble();
+                double skewValue = buf.getDouble();
+                boolean foundTarget = buf.get() != 0;
+                skew = new SkewVisionResult(xError, yError, xAbs, yAbs, skewValue, foundTarget);
+            }
+
+            if (buf.hasRemaining()) {
+                return null;
+            }
+
+            Mat frame = new Mat(rows, cols, type);
+            frame.put(0, 0, data);
+            return new RecordedFrame(processTime, frameNumber, frame, model3D, skew);
+        } catch (BufferUnderflowException | IllegalArgumentException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package org.hyperonline.visiontest2019.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import org.hyperonline.hyperlib.vision.VisionGUIPipeline;
+import org.hyperonline.visiontest2019.pipelines.Model3DResult;
+import org.hyperonline.visiontest2019.pipelines.SkewVisionResult;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Records raw camera frames, along with the results computed from them, to a
+ * segmented log file which can later be played back with
+ * {@link MatchLogReader}.
+ *
+ * This is meant to be added to a {@code VisionModule} after the pipelines
+ * whose results it records, so that the suppliers return the result for the
+ * current frame. Frames are only recorded while the recorder is armed, e.g.
+ * during a match. They are copied into a fixed pool of buffers and written out
+ * by a background thread into memory-mapped segments. If the writer falls
+ * behind and no buffer is free, the frame is dropped rather than blocking the
+ * vision thread.
+ *
+ * The segments of a run form a ring sized to fit the run budget. Once it is
+ * used up, the oldest segment of the run is overwritten, so the run always
+ * holds its most recent frames. The writer thread allocates the whole ring
+ * whenever it has nothing else to do, normally before the recorder is first
+ * armed, so moving on to the next segment only has to map it. To keep all the
+ * logs in the directory under the total budget, segments of the oldest earlier
+ * runs are reused for the new ring, or deleted.
+ */
+public class MatchRecorder implements VisionGUIPipeline, AutoCloseable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 32L * 1024 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+
+    /*
+     * How often to flush the current segment to disk. Nothing flushes it if the
+     * robot loses power, so this bounds how much of the log can be lost.
+     */
+    private static final long FORCE_INTERVAL_NANOS = 1_000_000_000L;
+
+    /*
+     * How much of the ring to allocate at a time, between frames
+     */
+    private static final int ZERO_CHUNK_SIZE = 1024 * 1024;
+
+    private final String m_prefix;
+    private final long m_segmentSize;
+    private final int m_maxSegments;
+    private final long m_totalBudget;
+    private final Supplier<List<Model3DResult>> m_model3D;
+    private final Supplier<SkewVisionResult> m_skew;
+    private final BooleanSupplier m_armed;
+
+    /**
+     * A frame waiting to be written. These are reused to avoid allocating a new
+     * buffer for every frame.
+     */
+    private static class PendingFrame {
+        long processTime;
+        long frameNumber;
+        int rows, cols, type;
+        int length;
+        byte[] data = new byte[0];
+        List<Model3DResult> model3D;
+        SkewVisionResult skew;
+    }
+
+    private final BlockingQueue<PendingFrame> m_free;
+    private final BlockingQueue<PendingFrame> m_ready;
+
+    private final Thread m_writerThread;
+    private volatile boolean m_closed = false;
+
+    private final AtomicLong m_framesSeen = new AtomicLong();
+    private final AtomicLong m_framesDropped = new AtomicLong();
+    private final AtomicLong m_framesWritten = new AtomicLong();
+
+    /*
+     * Only touched by the writer thread once it has started
+     */
+    private final Deque<File> m_oldSegments = new ArrayDeque<>();
+    private long m_oldBytes = 0;
+    private final ByteBuffer m_zeros = ByteBuffer.allocate(ZERO_CHUNK_SIZE);
+    private int m_prepared = 0;
+    private MappedByteBuffer m_segment = null;
+    private long m_sequence = 0;
+    private boolean m_failed = false;
+
+    /**
+     * Construct a recorder with the default segment size and buffer count.
+     *
+     * @param directory
+     *                        The directory to write segments to. It is created if
+     *                        it doesn't exist.
+     * @param model3D
+     *                        Supplies the latest 3D results, or {@code null} to
+     *                        not record them.
+     * @param skew
+     *                        Supplies the latest skew result, or {@code null} to
+     *                        not record it.
+     * @param armed
+     *                        Frames are only recorded while this returns true.
+     * @param runBudget
+     *                        The most disk space this run may use, in bytes.
+     * @param totalBudget
+     *                        The most disk space all the logs in the directory
+     *                        may use together, in bytes.
+     */
+    public MatchRecorder(File directory, Supplier<List<Model3DResult>> model3D, Supplier<SkewVisionResult> skew,
+            BooleanSupplier armed, long runBudget, long totalBudget) {
+        this(directory, model3D, skew, armed, runBudget, totalBudget, DEFAULT_SEGMENT_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Construct a recorder. Each run is numbered one past the newest run already
+     * in the directory, so earlier runs are only removed to stay under the total
+     * budget, oldest first. Nothing is written to the log until the recorder is
+     * first armed, but the ring starts being allocated right away.
+     *
+     * @param directory
+     *                        The directory to write segments to. It is created if
+     *                        it doesn't exist.
+     * @param model3D
+     *                        Supplies the latest 3D results, or {@code null} to
+     *                        not record them.
+     * @param skew
+     *                        Supplies the latest skew result, or {@code null} to
+     *                        not record it.
+     * @param armed
+     *                        Frames are only recorded while this returns true.
+     * @param runBudget
+     *                        The most disk space this run may use, in bytes. This
+     *                        is rounded down to a whole number of segments.
+     * @param totalBudget
+     *                        The most disk space all the logs in the directory
+     *                        may use together, in bytes.
+     * @param segmentSize
+     *                        The size in bytes each segment is preallocated to.
+     * @param bufferCount
+     *                        The number of frames which can be waiting to be
+     *                        written before frames are dropped.
+     * @throws IllegalArgumentException
+     *                                      If either budget is smaller than one
+     *                                      segment.
+     */
+    public MatchRecorder(File directory, Supplier<List<Model3DResult>> model3D, Supplier<SkewVisionResult> skew,
+            BooleanSupplier armed, long runBudget, long totalBudget, long segmentSize, int bufferCount) {
+        Objects.requireNonNull(directory, "directory == null");
+        Objects.requireNonNull(armed, "armed == null");
+        if (segmentSize < MatchLogFormat.HEADER_SIZE + 4 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segmentSize out of range");
+        }
+        if (runBudget < segmentSize || totalBudget < segmentSize) {
+            throw new IllegalArgumentException("budget is smaller than one segment of " + segmentSize + " bytes");
+        }
+        if (bufferCount <= 0) {
+            throw new IllegalArgumentException("bufferCount must be positive");
+        }
+
+        directory.mkdirs();
+        List<File> oldSegments = MatchLogFormat.listSegments(directory);
+        oldSegments.sort(Comparator.comparingInt(MatchLogFormat::runNumber)
+                .thenComparingInt(MatchLogFormat::segmentIndex));
+        int run = oldSegments.isEmpty() ? 1 : MatchLogFormat.runNumber(oldSegments.get(oldSegments.size() - 1)) + 1;
+        while (MatchLogFormat.segmentFile(MatchLogFormat.runPrefix(directory, run), 0).exists()) {
+            run++;
+        }
+        for (File file : oldSegments) {
+            m_oldSegments.add(file);
+            m_oldBytes += file.length();
+        }
+
+        m_prefix = MatchLogFormat.runPrefix(directory, run);
+        m_segmentSize = segmentSize;
+        m_maxSegments = (int) Math.min(Integer.MAX_VALUE, Math.min(runBudget, totalBudget) / segmentSize);
+        m_totalBudget = totalBudget;
+        m_model3D = model3D;
+        m_skew = skew;
+        m_armed = armed;
+
+        m_free = new ArrayBlockingQueue<>(bufferCount);
+        m_ready = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            m_free.add(new PendingFrame());
+        }
+
+        m_writerThread = new Thread(this::writerThread);
+        m_writerThread.setName("Match recorder thread");
+        m_writerThread.setDaemon(true);
+        m_writerThread.start();
+    }
+
+    /**
+     * Get the prefix shared by all segments of this recording. Pass this to
+     * {@link MatchLogReader} to play it back.
+     *
+     * @return The segment prefix.
+     */
+    public String getPrefix() {
+        return m_prefix;
+    }
+
+    /**
+     * Get the number of frames seen while armed.
+     *
+     * @return The number of frames.
+     */
+    public long getFramesSeen() {
+        return m_framesSeen.get();
+    }
+
+    /**
+     * Get the number of frames seen while armed which were not recorded, because
+     * the writer had fallen behind, the log could not be written, or the
+     * recorder was closing.
+     *
+     * @return The number of frames.
+     */
+    public long getFramesDropped() {
+        return m_framesDropped.get();
+    }
+
+    /**
+     * Get the number of frames written to the log. This includes frames which
+     * have since been overwritten by the ring wrapping around.
+     *
+     * @return The number of frames.
+     */
+    public long getFramesWritten() {
+        return m_framesWritten.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(Mat mat) {
+        if (!m_armed.getAsBoolean()) {
+            return;
+        }
+        long processTime = System.nanoTime();
+        long frameNumber = m_framesSeen.getAndIncrement();
+        if (m_closed || CvType.depth(mat.type()) != CvType.CV_8U) {
+            m_framesDropped.incrementAndGet();
+            return;
+        }
+
+        PendingFrame frame = m_free.poll();
+        if (frame == null) {
+            m_framesDropped.incrementAndGet();
+            return;
+        }
+
+        frame.processTime = processTime;
+        frame.frameNumber = frameNumber;
+        frame.rows = mat.rows();
+        frame.cols = mat.cols();
+        frame.type = mat.type();
+        frame.length = (int) (mat.total() * mat.elemSize());
+        if (frame.data.length != frame.length) {
+            frame.data = new byte[frame.length];
+        }
+        mat.get(0, 0, frame.data);
+        frame.model3D = m_model3D == null ? null : m_model3D.get();
+        frame.skew = m_skew == null ? null : m_skew.get();
+
+        m_ready.add(frame);
+
+        // If we raced with close, the writer may already have finished. Take the
+        // frame back if it hasn't been picked up, so it's counted as dropped.
+        if (m_closed && m_ready.remove(frame)) {
+            m_framesDropped.incrementAndGet();
+            recycle(frame);
+        }
+    }
+
+    private void recycle(PendingFrame frame) {
+        frame.model3D = null;
+        frame.skew = null;
+        m_free.add(frame);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeOutput(Mat mat) {
+        // Nothing to draw
+    }
+
+    /**
+     * Stop recording. Frames already queued are written out before this
+     * returns.
+     */
+    @Override
+    public void close() {
+        m_closed = true;
+        try {
+            m_writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writerThread() {
+        System.out.println("Match recorder writing to " + m_prefix + " when armed");
+
+        long lastForce = System.nanoTime();
+        while (!m_closed || !m_ready.isEmpty()) {
+            // Until the ring is allocated, spend any time not spent writing
+            // frames on allocating it
+            boolean preparing = !m_failed && m_prepared < m_maxSegments;
+            PendingFrame frame;
+            try {
+                frame = preparing ? m_ready.poll() : m_ready.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (frame != null) {
+                if (m_failed || !writeFrame(frame)) {
+                    m_framesDropped.incrementAndGet();
+                } else {
+                    m_framesWritten.incrementAndGet();
+                }
+                recycle(frame);
+            } else if (preparing) {
+                try {
+                    prepareStep();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            long now = System.nanoTime();
+            if (m_segment != null && now - lastForce >= FORCE_INTERVAL_NANOS) {
+                m_segment.force();
+                lastForce = now;
+            }
+        }
+
+        finishSegment();
+        System.out.println("Match recorder stopped: " + m_framesWritten.get() + " frames written, "
+                + m_framesDropped.get() + " dropped");
+    }
+
+    private void fail(IOException e) {
+        e.printStackTrace();
+        System.out.println("Match recorder failed, no more frames will be recorded");
+        m_failed = true;
+    }
+
+    private boolean writeFrame(PendingFrame frame) {
+        int model3DCount = frame.model3D == null ? -1 : frame.model3D.size();
+        int size = MatchLogFormat.recordSize(frame.length, model3DCount, frame.skew != null);
+        if (4L + size > m_segmentSize - MatchLogFormat.HEADER_SIZE) {
+            return false;
+        }
+
+        try {
+            if (m_segment == null || m_segment.remaining() < 4 + size) {
+                finishSegment();
+                openSegment();
+            }
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+
+        MappedByteBuffer buf = m_segment;
+        int start = buf.position();
+        buf.position(start + 4);
+        buf.putLong(frame.processTime);
+        buf.putLong(frame.frameNumber);
+        buf.putInt(frame.rows);
+        buf.putInt(frame.cols);
+        buf.putInt(frame.type);
+        buf.putInt(frame.length);
+        buf.put(frame.data, 0, frame.length);
+
+        if (frame.model3D == null) {
+            buf.put((byte) 0);
+        } else {
+            buf.put((byte) 1);
+            buf.putInt(frame.model3D.size());
+            for (Model3DResult result : frame.model3D) {
+                for (float f : result.translationVector()) {
+                    buf.putFloat(f);
+                }
+                for (float f : result.rotationVector()) {
+                    buf.putFloat(f);
+                }
+            }
+        }
+
+        if (frame.skew == null) {
+            buf.put((byte) 0);
+        } else {
+            buf.put((byte) 1);
+            buf.putDouble(frame.skew.xError());
+            buf.putDouble(frame.skew.yError());
+            buf.putDouble(frame.skew.xAbsolute());
+            buf.putDouble(frame.skew.yAbsolute());
+            buf.putDouble(frame.skew.skew());
+            buf.put((byte) (frame.skew.foundTarget() ? 1 : 0));
+        }
+
+        ByteBuffer body = buf.duplicate();
+        body.position(start + 4);
+        body.limit(buf.position());
+        buf.putInt(MatchLogFormat.checksum(body));
+
+        // Mark the end of the segment after this record, then publish its
+        // length. This only orders the writes in memory; the OS may write them to
+        // disk in any order, which is what the checksum is for.
+        if (buf.remaining() >= 4) {
+            buf.putInt(buf.position(), MatchLogFormat.END_OF_SEGMENT);
+        }
+        buf.putInt(start, size);
+        return true;
+    }
+
+    private void openSegment() throws IOException {
+        int index = (int) (m_sequence % m_maxSegments);
+        // Normally the ring is allocated long before it's needed, but if frames
+        // started coming in right away, finish this segment now
+        while (m_prepared <= index) {
+            prepareStep();
+        }
+
+        File file = MatchLogFormat.segmentFile(m_prefix, index);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            m_segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, m_segmentSize);
+        }
+
+        // A reused segment still holds records from the last time around the
+        // ring, so cut them off before writing the new header
+        m_segment.order(ByteOrder.LITTLE_ENDIAN);
+        m_segment.putInt(MatchLogFormat.HEADER_SIZE, MatchLogFormat.END_OF_SEGMENT);
+        m_segment.putInt(MatchLogFormat.MAGIC);
+        m_segment.putInt(MatchLogFormat.VERSION);
+        m_segment.putLong(m_sequence++);
+        m_segment.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Allocate the next chunk of the next segment of the ring. Every block of a
+     * segment has to exist on disk before it is mapped: mapping past the end of
+     * a file only makes it sparse, and writing through the mapping once the disk
+     * is full would crash the JVM with SIGBUS. Writing zeros up front instead
+     * fails here, with an exception.
+     */
+    private void prepareStep() throws IOException {
+        File file = MatchLogFormat.segmentFile(m_prefix, m_prepared);
+        if (!file.exists()) {
+            makeRoom(file);
+        }
+
+        boolean existed = file.exists();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+            long position = channel.size();
+            if (position > m_segmentSize) {
+                channel.truncate(m_segmentSize);
+            } else if (position < m_segmentSize) {
+                m_zeros.clear();
+                m_zeros.limit((int) Math.min(ZERO_CHUNK_SIZE, m_segmentSize - position));
+                channel.write(m_zeros, position);
+                if (channel.size() < m_segmentSize) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Don't leave a partial segment behind taking up space
+            if (!existed) {
+                file.delete();
+            }
+            throw e;
+        }
+        m_prepared++;
+    }
+
+    /**
+     * Make room under the total budget for the next segment of the ring, by
+     * taking segments from the oldest earlier runs. The first one taken is
+     * renamed into place so it doesn't need to be allocated again, and the rest
+     * are deleted.
+     */
+    private void makeRoom(File slot) throws IOException {
+        boolean reused = false;
+        while (!m_oldSegments.isEmpty() && m_oldBytes + (m_prepared + 1L) * m_segmentSize > m_totalBudget) {
+            File old = m_oldSegments.removeFirst();
+            m_oldBytes -= old.length();
+            if (!reused && invalidate(old) && old.renameTo(slot)) {
+                reused = true;
+            } else if (!old.delete() && old.exists()) {
+                throw new IOException("Could not delete " + old + " to stay under the budget");
+            }
+        }
+    }
+
+    /**
+     * Clear the magic number of a segment, so it is no longer read as part of
+     * its log.
+     */
+    private static boolean invalidate(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(0);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void finishSegment() {
+        if (m_segment == null) {
+            return;
+        }
+        m_segment.force();
+        MatchLogFormat.unmap(m_segment);
+        m_segment = null;
+    }
+}
@@ -0,0 +1,79 @@
+package org.hyperonline.visiontest2019.recording;
+
+import java.util.List;
+
+import org.hyperonline.visiontest2019.pipelines.Model3DResult;
+import org.hyperonline.visiontest2019.pipelines.SkewVisionResult;
+import org.opencv.core.Mat;
+
+/**
+ * A single frame read back from a match log, along with the results that were
+ * computed from it at the time it was recorded.
+ */
+public class RecordedFrame {
+
+    private final long m_processTime;
+    private final long m_frameNumber;
+    private final Mat m_frame;
+    private final List<Model3DResult> m_model3D;
+    private final SkewVisionResult m_skew;
+
+    RecordedFrame(long processTime, long frameNumber, Mat frame, List<Model3DResult> model3D,
+            SkewVisionResult skew) {
+        m_processTime = processTime;
+        m_frameNumber = frameNumber;
+        m_frame = frame;
+        m_model3D = model3D;
+        m_skew = skew;
+    }
+
+    /**
+     * Get the time the recorder saw the frame, as given by
+     * {@link System#nanoTime()} on the recording machine. This is taken after any
+     * pipelines ahead of the recorder have run, so it includes their processing
+     * jitter, and is not the time the frame was grabbed from the camera. Only
+     * differences between these times are meaningful.
+     *
+     * @return The processing time, in nanoseconds.
+     */
+    public long getProcessTime() {
+        return m_processTime;
+    }
+
+    /**
+     * Get the number of the frame since recording started. Gaps in these numbers
+     * mean frames were dropped.
+     *
+     * @return The frame number.
+     */
+    public long getFrameNumber() {
+        return m_frameNumber;
+    }
+
+    /**
+     * Get the recorded image. The caller is responsible for releasing it.
+     *
+     * @return The image.
+     */
+    public Mat getFrame() {
+        return m_frame;
+    }
+
+    /**
+     * Get the 3D results recorded with this frame.
+     *
+     * @return The results, or {@code null} if they weren't recorded.
+     */
+    public List<Model3DResult> getModel3DResults() {
+        return m_model3D;
+    }
+
+    /**
+     * Get the skew result recorded with this frame.
+     *
+     * @return The result, or {@code null} if it wasn't recorded.
+     */
+    public SkewVisionResult getSkewResult() {
+        return m_skew;
+    }
+}
@@ -8,13 +8,13 @@ public class Runner {
         NetworkTableInstance inst = NetworkTableInstance.getDefault();
         inst.setNetworkIdentity("Robot");
         inst.startServer(System.getProperty("user.home") + "/networktables.ini");
-        @SuppressWarnings("unused")
         VisionSystem vs = new VisionSystem();
         while(true) { 
             try {
                 Thread.sleep(1000);
             } catch (InterruptedException e) {
             }
+            vs.periodic();
         }
     }
 
@@ -1,19 +1,26 @@
 package org.hyperonline.visiontest2019.runner;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.hyperonline.hyperlib.pref.IntPreference;
 import org.hyperonline.hyperlib.pref.PreferencesSet;
 import org.hyperonline.hyperlib.pref.StringPreference;
 import org.hyperonline.hyperlib.vision.CrosshairsPipeline;
-import org.hyperonline.hyperlib.vision.VisionGUIPipeline;
 import org.hyperonline.hyperlib.vision.VisionModule;
 import org.hyperonline.visiontest2019.pipelines.Model3DPipeline;
+import org.hyperonline.visiontest2019.recording.MatchLogReader;
+import org.hyperonline.visiontest2019.recording.MatchRecorder;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 
 import edu.wpi.cscore.CameraServerJNI;
 import edu.wpi.cscore.CvSource;
 import edu.wpi.first.cameraserver.CameraServer;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.networktables.NetworkTableInstance;
 
 public class VisionSystem {
     
@@ -41,8 +48,23 @@ public class VisionSystem {
         
     }
     
+    MatchLogReader m_reader;
+    
+    void replayFeederThread() {
+        System.out.println("Vision replay thread started");
+        
+        try {
+            m_reader.replay(m_source::putFrame, MatchLogReader.Speed.RECORDED);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        
+        System.out.println("Vision replay finished");
+    }
+    
     private VisionModule m_module;
-    private VisionGUIPipeline m_pipeline;
+    private MatchRecorder m_recorder;
+    private Model3DPipeline m_pipeline;
     private CrosshairsPipeline m_crosshairs;
     
     private PreferencesSet m_prefs = new PreferencesSet("Vision");
@@ -50,35 +72,100 @@ public class VisionSystem {
     private IntPreference m_yCross = m_prefs.addInt("Crosshairs Y", 200);
     private StringPreference m_filename = m_prefs.addString("Image Filename", 
             "/home/james/Robotics/2019VisionImages-1/RocketPanelAngleDark60in.jpg");
+    private StringPreference m_replayLog = m_prefs.addString("Replay Log", "");
+    private StringPreference m_recordDirectory = m_prefs.addString("Record Directory", "");
+    // Space for one run, and for all runs kept in the directory
+    private IntPreference m_recordRunBudget = m_prefs.addInt("Record Run MB", 4096);
+    private IntPreference m_recordBudget = m_prefs.addInt("Record Budget MB", 12288);
+    
+    // Set by the robot while recording should happen, e.g. during a match
+    private NetworkTableEntry m_recordEnabled = NetworkTableInstance.getDefault()
+            .getTable("Vision").getEntry("Record Enabled");
+    private NetworkTableEntry m_recordSeen = NetworkTableInstance.getDefault()
+            .getTable("Vision").getEntry("Record Frames Seen");
+    private NetworkTableEntry m_recordWritten = NetworkTableInstance.getDefault()
+            .getTable("Vision").getEntry("Record Frames Written");
+    private NetworkTableEntry m_recordDropped = NetworkTableInstance.getDefault()
+            .getTable("Vision").getEntry("Record Frames Dropped");
     
 
     public VisionSystem() {
         CameraServerJNI.forceLoad();
         System.out.println(Core.getBuildInformation());
         
-        // Set up dummy source to feed images
-        m_image = Imgcodecs.imread(m_filename.get());
-        if (m_image.empty()) {
-            System.out.println("Could not load test image!  Vision will not work!");
-            return;
+        // Set up dummy source to feed images, either from a recorded match or a
+        // single test image
+        if (!m_replayLog.get().isEmpty()) {
+            Size size;
+            try {
+                m_reader = new MatchLogReader(m_replayLog.get());
+                size = m_reader.getFrameSize();
+            } catch (IOException e) {
+                e.printStackTrace();
+                size = null;
+            }
+            if (size == null) {
+                System.out.println("Could not load replay log!  Vision will not work!");
+                return;
+            }
+            m_source = CameraServer.getInstance().putVideo("Dummy source of replay", (int) size.width,
+                    (int) size.height);
+            m_feederThread = new Thread(this::replayFeederThread);
+            m_feederThread.setName("Replay feeder thread");
+        } else {
+            m_image = Imgcodecs.imread(m_filename.get());
+            if (m_image.empty()) {
+                System.out.println("Could not load test image!  Vision will not work!");
+                return;
+            }
+            m_source = CameraServer.getInstance().putVideo("Dummy source of file", m_image.width(), m_image.height());
+            m_feederThread = new Thread(this::imageFeederThread);
+            m_feederThread.setName("Image feeder thread");
         }
-        m_source = CameraServer.getInstance().putVideo("Dummy source of file", m_image.width(), m_image.height());
-        m_feederThread = new Thread(this::imageFeederThread);
-        m_feederThread.setName("Image feeder thread");
         m_feederThread.setDaemon(true);
-        m_feederThread.start();
         
         //m_processor = new SkewPairTargetProcessor(m_xCross::get, m_yCross::get);
         //m_pipeline = new FindTargetsPipeline("My Pipeline", m_processor);
         m_pipeline = new Model3DPipeline("Model3D Pipeline");
         m_crosshairs = new CrosshairsPipeline(m_xCross::get, m_yCross::get, 100, 100, 100);
         
-        m_module = new VisionModule.Builder(m_source)
+        VisionModule.Builder builder = new VisionModule.Builder(m_source)
                 .addPipeline(m_pipeline)
-                .addPipeline(m_crosshairs)
-                .build();
+                .addPipeline(m_crosshairs);
+        
+        // Don't re-record a log we're replaying
+        if (m_reader == null && !m_recordDirectory.get().isEmpty()) {
+            m_recordEnabled.setDefaultBoolean(false);
+            try {
+                m_recorder = new MatchRecorder(new File(m_recordDirectory.get()), m_pipeline::getLastResult, null,
+                        () -> m_recordEnabled.getBoolean(false), m_recordRunBudget.get() * 1024L * 1024L,
+                        m_recordBudget.get() * 1024L * 1024L);
+                builder.addPipeline(m_recorder);
+                Runtime.getRuntime().addShutdownHook(new Thread(m_recorder::close));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Not recording matches: " + e.getMessage());
+            }
+        }
+        
+        m_module = builder.build();
         
         m_module.start();
+        
+        // Start feeding only once the module is running, so a replay doesn't
+        // lose its first frames
+        m_feederThread.start();
+    }
+    
+    /**
+     * Publish the recorder's frame counts, so dropped frames show up on the
+     * dashboard. Call this periodically.
+     */
+    public void periodic() {
+        if (m_recorder != null) {
+            m_recordSeen.setDouble(m_recorder.getFramesSeen());
+            m_recordWritten.setDouble(m_recorder.getFramesWritten());
+            m_recordDropped.setDouble(m_recorder.getFramesDropped());
+        }
     }
 
 }